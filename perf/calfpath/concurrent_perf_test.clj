@@ -0,0 +1,357 @@
+;   Copyright (c) Shantanu Kumar. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file LICENSE at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+
+(ns calfpath.concurrent-perf-test
+  "Multi-threaded throughput, latency and allocation benchmarks for route dispatchers. Every response is verified
+  against the expected one, so that any state shared between concurrent requests (e.g. path params) fails the test."
+  (:require
+    [clojure.pprint :as pp]
+    [clojure.test :refer [deftest is testing]]
+    [calfpath.internal :as i]
+    [calfpath.long-perf-test :as lpt]
+    [calfpath.route :as r]
+    [calfpath.route.uri-index-match :as uim])
+  (:import
+    [java.lang.management ManagementFactory]
+    [java.lang.reflect Method]
+    [java.util Arrays Collections Random]
+    [java.util.concurrent BrokenBarrierException Callable CyclicBarrier ExecutionException ExecutorService Executors
+     Future TimeUnit TimeoutException]))
+
+
+(defn params-handler
+  [request]
+  {:status 200
+   :headers {"Content-Type" "text/plain"}
+   :body (into {} (:path-params request))})
+
+
+(def uri-patterns
+  (->> lpt/opensensors-calfpath-routes
+    (mapv (comp first key first))))
+
+
+(def compiled-calfpath-routes
+  (-> (mapv (fn [uri] {[uri :get] params-handler}) uri-patterns)
+    (r/compile-routes {:show-uris-400? false})))
+
+
+;; `compile-routes` matches URIs via `Util/matchURI`, so the routes below match URIs using `UriIndexContext` instead
+;; (one context, having its own buffer, per request) to cover that class as well
+
+
+(defn make-uri-index-matcher
+  [uri-pattern]
+  (let [[tokens _] (uim/parse-uri-template uri-pattern)]
+    (if (and (= 1 (count tokens)) (string? (first tokens)))
+      (let [token (first tokens)]
+        (fn static-uri-index-matcher [request]
+          (uim/match-static-uri-full request token :path-params)))
+      (fn dynamic-uri-index-matcher [request]
+        (uim/match-dynamic-uri-full request tokens :path-params)))))
+
+
+(def compiled-uri-index-routes
+  (-> (mapv (fn [uri] {:uri     uri
+                       :matcher (make-uri-index-matcher uri)
+                       :nested  [{:method :get :handler params-handler}]})
+        uri-patterns)
+    (r/compile-routes {:easy? false :tidy? false :show-uris-400? false})))
+
+
+(defn wrap-uri-index-context
+  [dispatcher]
+  (fn [request]
+    (dispatcher (uim/prepare-request request :path-params))))
+
+
+(def dispatchers
+  [["CalfPath-route-walker"           (partial r/dispatch compiled-calfpath-routes)]
+   ["CalfPath-route-unroll"           (r/make-dispatcher compiled-calfpath-routes)]
+   ["CalfPath-uri-index-route-walker" (wrap-uri-index-context (partial r/dispatch compiled-uri-index-routes))]
+   ["CalfPath-uri-index-route-unroll" (wrap-uri-index-context (r/make-dispatcher compiled-uri-index-routes))]])
+
+
+;; ----- workload -----
+
+
+(defn make-workload
+  "Return `[requests expected-responses]` (object arrays) for a worker. Route popularity follows a Zipf-like
+  distribution over shuffled routes; about 5% of requests have an unsupported method and 5% an unknown URI. Path
+  param values are unique per worker and per request, so that leaked params are detected."
+  [^long worker-id ^long n]
+  (let [rnd       (Random. worker-id)
+        templates (let [tokens (java.util.ArrayList. ^java.util.Collection (mapv (comp first i/parse-uri-template)
+                                                                             uri-patterns))]
+                    (Collections/shuffle tokens (Random. 42))  ; same popularity ranking for every worker
+                    (vec tokens))
+        cumulative (->> (range (count templates))
+                     (map (fn [^long rank] (/ 1.0 (inc rank))))
+                     (reductions +)
+                     double-array)
+        total      (aget ^doubles cumulative (dec (alength ^doubles cumulative)))
+        requests   (object-array n)
+        expected   (object-array n)]
+    (dotimes [k n]
+      (let [pick     (let [idx (Arrays/binarySearch ^doubles cumulative (* total (.nextDouble rnd)))]
+                       (if (neg? idx) (- (inc idx)) idx))
+            template (get templates pick)
+            params   (->> template
+                       (filter keyword?)
+                       (map (fn [param] [param (str (name param) "-" worker-id "-" k)]))
+                       (into {}))
+            uri      (r/realize-uri template {:uri-params params})
+            roll     (.nextInt rnd 100)]
+        (cond
+          (< roll 90) (do
+                        (aset requests k {:request-method :get :uri uri})
+                        (aset expected k {:status 200 :body params}))
+          (< roll 95) (do
+                        (aset requests k {:request-method :post :uri uri})
+                        (aset expected k {:status 405}))
+          :otherwise  (do
+                        (aset requests k {:request-method :get :uri (str "/v3/unknown/" worker-id "/" k)})
+                        (aset expected k {:status 400})))))
+    [requests expected]))
+
+
+(defn response-ok?
+  [response expected]
+  (and (= (:status expected) (:status response))
+    (or (not (contains? expected :body))
+      (= (:body expected) (:body response)))))
+
+
+;; ----- measurement -----
+
+
+(def ^:private thread-mx-bean (ManagementFactory/getThreadMXBean))
+
+
+(defn- allocated-bytes
+  "Return bytes allocated so far by the current thread, or -1 if not supported (e.g. for virtual threads)."
+  ^long []
+  (let [bean thread-mx-bean]
+    (if (instance? com.sun.management.ThreadMXBean bean)
+      (.getThreadAllocatedBytes ^com.sun.management.ThreadMXBean bean (.getId (Thread/currentThread)))
+      -1)))
+
+
+(def ^:private virtual-executor-factory
+  "Fn to create an executor that runs every task in a new virtual thread, or nil if virtual threads are unsupported."
+  (try
+    (let [^Method method (.getMethod Executors "newVirtualThreadPerTaskExecutor" (make-array Class 0))]
+      (fn [] (.invoke method nil (object-array 0))))
+    (catch NoSuchMethodException _
+      nil)))
+
+
+(def ^:const histogram-size 1888)  ; see `bucket-index`
+
+
+(defn- bucket-index
+  "Return histogram bucket index for a latency value, keeping 6 significant bits (i.e. within ~3% precision)."
+  ^long [^long value]
+  (if (< value 64)
+    (max value 0)
+    (let [shift (- 58 (Long/numberOfLeadingZeros value))]  ; (floor(log2 value) - 5)
+      (+ (* shift 32) (bit-shift-right value shift)))))
+
+
+(defn- bucket-value
+  "Return the lowest latency value in the histogram bucket."
+  ^long [^long index]
+  (if (< index 64)
+    index
+    (let [shift (dec (quot index 32))]
+      (bit-shift-left (- index (* shift 32)) shift))))
+
+
+(defn- percentile
+  [^longs histogram ^double p]
+  (let [total (areduce histogram i sum 0 (+ sum (aget histogram i)))]
+    (when (pos? total)
+      (let [target (long (Math/ceil (* p total)))]
+        (loop [i 0
+               sum 0]
+          (let [sum (+ sum (aget histogram i))]
+            (if (or (>= sum target) (= (inc i) (alength histogram)))
+              (bucket-value i)
+              (recur (inc i) sum))))))))
+
+
+(def ^:const timeout-minutes 5)
+
+
+(defn run-load
+  "Run the workloads concurrently (one task per workload) on the executor, in the following phases:
+  1. Verify every response, all tasks running concurrently
+  2. Measure throughput in wall-clock rounds, each started by a barrier for all tasks, without per-request timing;
+     allocation is sampled only around the dispatch loop, responses are verified after each round
+  3. Measure per-request latency in a separate pass, verifying responses after the pass
+  Failures (including exceptions) are recorded in the failures atom. Return a map of throughput, latency and
+  allocation, or nil when the run could not complete."
+  [dispatcher ^ExecutorService executor workloads ^long rounds failures]
+  (let [task-count (count workloads)
+        gate       (CyclicBarrier. (inc task-count))  ; all tasks and the main thread
+        await-gate (fn [] (.await gate timeout-minutes TimeUnit/MINUTES))
+        fail!      (fn [details]
+                     (swap! failures #(if (< (count %) 10)
+                                        (conj % details)
+                                        %)))
+        verify!    (fn [^objects requests ^objects expected ^objects responses]
+                     (dotimes [j (alength requests)]
+                       (when-not (response-ok? (aget responses j) (aget expected j))
+                         (fail! {:request  (aget requests j)
+                                 :response (aget responses j)
+                                 :expected (aget expected j)}))))
+        guarded    (fn [phase f]  ; record exception, if any, so that the task still reaches the next gate
+                     (try
+                       (f)
+                       (catch Throwable e
+                         (fail! {:phase phase :error e})
+                         nil)))
+        futures    (mapv (fn [[^objects requests ^objects expected]]
+                           (.submit executor
+                             ^Callable (fn []
+                                         (let [n         (alength requests)
+                                               responses (object-array n)
+                                               histogram (long-array histogram-size)
+                                               alloc     (long-array 1)]  ; -1 when unsupported
+                                           ;; phase 1: verify (also warm up)
+                                           (await-gate)
+                                           (guarded :verify
+                                             (fn []
+                                               (dotimes [j n]
+                                                 (aset responses j (dispatcher (aget requests j))))
+                                               (verify! requests expected responses)))
+                                           ;; phase 2: throughput and allocation
+                                           (dotimes [_ rounds]
+                                             (await-gate)  ; round start
+                                             (guarded :throughput
+                                               (fn []
+                                                 (let [alloc-start (allocated-bytes)]
+                                                   (dotimes [j n]
+                                                     (aset responses j (dispatcher (aget requests j))))
+                                                   (let [alloc-stop (allocated-bytes)]
+                                                     (if (and (>= alloc-start 0) (>= alloc-stop 0)
+                                                           (>= (aget alloc 0) 0))
+                                                       (aset alloc 0 (+ (aget alloc 0) (- alloc-stop alloc-start)))
+                                                       (aset alloc 0 -1))))))
+                                             (await-gate)  ; round end
+                                             (guarded :verify #(verify! requests expected responses)))
+                                           ;; phase 3: latency
+                                           (await-gate)
+                                           (guarded :latency
+                                             (fn []
+                                               (dotimes [j n]
+                                                 (let [start    (System/nanoTime)
+                                                       response (dispatcher (aget requests j))
+                                                       stop     (System/nanoTime)
+                                                       idx      (bucket-index (- stop start))]
+                                                   (aset responses j response)
+                                                   (aset histogram idx (unchecked-inc (aget histogram idx)))))
+                                               (verify! requests expected responses)))
+                                           {:requests  (* n rounds)
+                                            :histogram histogram
+                                            :alloc     (let [a (aget alloc 0)]
+                                                         (when (>= a 0) a))}))))
+                     workloads)
+        results    (try
+                     (await-gate)  ; phase 1
+                     (let [elapsed (loop [round 0
+                                          elapsed 0]
+                                     (if (< round rounds)
+                                       (do
+                                         (await-gate)
+                                         (let [start (System/nanoTime)]
+                                           (await-gate)
+                                           (recur (inc round) (+ elapsed (- (System/nanoTime) start)))))
+                                       elapsed))]
+                       (await-gate)  ; phase 3
+                       {:elapsed elapsed
+                        :tasks   (mapv #(.get ^Future % timeout-minutes TimeUnit/MINUTES) futures)})
+                     (catch TimeoutException e
+                       (fail! {:phase :await :error e})
+                       nil)
+                     (catch BrokenBarrierException e
+                       (fail! {:phase :await :error e})
+                       nil)
+                     (catch ExecutionException e
+                       (fail! {:phase :await :error (.getCause e)})
+                       nil)
+                     (finally
+                       (run! #(future-cancel %) futures)))]
+    (when-some [{:keys [elapsed tasks]} results]
+      (let [requests  (long (reduce + (map :requests tasks)))
+            histogram (let [merged (long-array histogram-size)]
+                        (doseq [^longs each (map :histogram tasks)]
+                          (dotimes [i histogram-size]
+                            (aset merged i (+ (aget merged i) (aget each i)))))
+                        merged)
+            allocs    (map :alloc tasks)]
+        {:throughput  (long (/ (* requests 1e9) (max 1 (long elapsed))))
+         :p50-ns      (percentile histogram 0.50)
+         :p99-ns      (percentile histogram 0.99)
+         :alloc-bytes (when (every? some? allocs)
+                        (long (/ (double (reduce + allocs)) requests)))}))))
+
+
+(defn thread-counts
+  "Return thread counts 1, 2, 4, ... up to (and including) the number of available processors."
+  []
+  (let [cores (.availableProcessors (Runtime/getRuntime))]
+    (-> (take-while #(< (long %) cores) (iterate #(* 2 (long %)) 1))
+      vec
+      (conj cores)
+      distinct
+      vec)))
+
+
+(deftest test-concurrent-dispatch
+  (let [bench?    (not (System/getenv "BENCH_DISABLE"))
+        ;; workload memory is bounded by the request budget, independent of the number of threads
+        budget    (if bench? 200000 20000)  ; total distinct requests across all tasks of a run
+        task-ops  (if bench? 200000 0)      ; measured requests per task, at least one round
+        cores     (.availableProcessors (Runtime/getRuntime))
+        run-with  (fn [kind thread-count make-executor dispatcher failures]
+                    (let [n         (max 100 (quot (long budget) (long thread-count)))
+                          rounds    (max 1 (quot (long task-ops) n))
+                          workloads (mapv #(make-workload % n) (range thread-count))
+                          ^ExecutorService executor (make-executor thread-count)]
+                      (try
+                        (some-> (run-load dispatcher executor workloads rounds failures)
+                          (assoc :kind kind :threads thread-count))
+                        (finally
+                          (.shutdownNow executor)
+                          (.awaitTermination executor 1 TimeUnit/MINUTES)))))]
+    (doseq [[dispatcher-name dispatcher] dispatchers]
+      (testing dispatcher-name
+        (let [failures (atom [])
+              platform (mapv #(run-with "platform" % (fn [n] (Executors/newFixedThreadPool (int n)))
+                                dispatcher failures)
+                         (thread-counts))
+              virtual  (when virtual-executor-factory
+                         (mapv #(run-with "virtual" % (fn [_] (virtual-executor-factory)) dispatcher failures)
+                           [cores (* 4 cores)]))
+              results  (remove nil? (concat platform virtual))
+              baseline (some-> (first platform) :throughput double)]
+          (is (empty? @failures) (str "concurrent responses must match expected ones, found: " (pr-str @failures)))
+          (when (and bench? baseline)
+            (println "\nConcurrent dispatch:" dispatcher-name
+              (if virtual-executor-factory "" "(virtual threads unsupported on this JVM)"))
+            (->> results
+              (map (fn [{:keys [threads throughput] :as result}]
+                     (let [threads    (long threads)
+                           throughput (double throughput)
+                           baseline   (double baseline)]
+                       (assoc result
+                         :scaling    (format "%.2fx" (/ throughput baseline))
+                         :efficiency (format "%.0f%%" (/ (* 100.0 throughput) (* baseline (min threads cores))))))))
+              (pp/print-table [:kind :threads :throughput :scaling :efficiency :p50-ns :p99-ns :alloc-bytes]))))))))
@@ -0,0 +1,412 @@
+;   Copyright (c) Shantanu Kumar. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file LICENSE at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+
+(ns calfpath.route.analyze
+  "Offline analysis of how requests (e.g. from an access log) land on compiled routes. Requests are resolved using the
+  real route matchers, but route handlers are never invoked. Clojure/JVM only."
+  (:require
+    [clojure.java.io :as io]
+    [clojure.string :as string]
+    [calfpath.internal :as i]
+    [calfpath.route :as r])
+  (:import
+    [java.io RandomAccessFile]
+    [java.nio Buffer ByteBuffer MappedByteBuffer]
+    [java.nio.channels FileChannel FileChannel$MapMode]
+    [java.nio.charset StandardCharsets]
+    [java.util HashMap Map$Entry]
+    [java.util.concurrent ExecutionException]
+    [calfpath VolatileInt]))
+
+
+;; ----- route instrumentation -----
+
+
+(def ^:const matcher-count-key "Request key for matcher evaluation counter" :calfpath/matcher-count)
+
+
+(def ^:const uri-matched-key "Request key for the last fully matched URI template" :calfpath/uri-matched)
+
+
+(defn- counting-matcher
+  "Wrap given matcher such that every evaluation increments the counter found in the request. When full-uri is
+  specified, a successful match also records it in the request as the last fully matched URI template."
+  [matcher full-uri]
+  (if (some? full-uri)
+    (fn uri-counting-matcher [request]
+      (let [^VolatileInt counter (get request matcher-count-key)]
+        (.set counter (unchecked-inc-int (.get counter))))
+      (when-some [result (matcher request)]
+        (vreset! (get request uri-matched-key) full-uri)
+        result))
+    (fn counting-matcher [request]
+      (let [^VolatileInt counter (get request matcher-count-key)]
+        (.set counter (unchecked-inc-int (.get counter))))
+      (matcher request))))
+
+
+(defn- method-label
+  [method]
+  (cond
+    (nil? method) "*"
+    (set? method) (->> method
+                    (map name)
+                    (map string/upper-case)
+                    sort
+                    (string/join "|"))
+    :otherwise    (string/upper-case (name method))))
+
+
+(defn- instrument-routes
+  "Given compiled routes, wrap every matcher with an evaluation counter, drop matchex (so that the real matchers are
+  evaluated) and replace every handler with a fn that returns the match outcome. Fallback routes are identified by
+  the `:fallback` tag put by `calfpath.route/conj-fallback-400` (`:uri`) and `conj-fallback-405` (`:method`)."
+  [routes uri-key method-key parent-uri parent-method]
+  (mapv (fn [route]
+          (let [uri      (get route uri-key)
+                full-uri (if (some? uri)
+                           (str parent-uri (i/strip-partial-marker uri))
+                           parent-uri)
+                method   (get route method-key parent-method)
+                label    (or (not-empty full-uri) "*")
+                route    (cond-> (dissoc route :matchex)
+                           (contains? route :matcher) (update :matcher counting-matcher
+                                                        ;; record only full (not partial) URI matches
+                                                        (when (and (string? uri) (not (string/ends-with? uri "*")))
+                                                          label)))]
+            ;; check :handler before :nested, as in `calfpath.route/dispatch`
+            (cond
+              (contains? route :handler) (let [outcome (case (get route :fallback)
+                                                         :uri    {:match :no-uri-match}
+                                                         :method {:match :no-method-match
+                                                                  :route label}
+                                                         {:match :route
+                                                          :route (str (method-label method) " " label)})]
+                                           (assoc route :handler (fn [_] outcome)))
+              (contains? route :nested)  (update route :nested
+                                           instrument-routes uri-key method-key full-uri method)
+              :otherwise                 route)))
+    routes))
+
+
+(defn make-route-analyzer
+  "Given compiled routes (see [[calfpath.route/compile-routes]]) return a fn `(fn [method uri]) -> outcome` that
+  resolves a request against the routes using the real matchers without invoking any route handler. The outcome is a
+  map with the following keys:
+
+  | Key       | Description                                                                                      |
+  |-----------|--------------------------------------------------------------------------------------------------|
+  |`:match`   |`:route` (matched), `:no-uri-match` (no URI matched) or `:no-method-match` (URI matched, not method)|
+  |`:route`   |route label, e.g. `\"GET /users/:id\"` - only URI template for `:no-method-match`, absent otherwise |
+  |`:matchers`|number of matchers evaluated to resolve the request                                               |
+
+  Requests landing on the fallback routes added by `compile-routes` (`:fallback-400?`, `:fallback-405?`) are reported
+  as `:no-uri-match` and `:no-method-match` respectively. When no route matches at all (e.g. routes compiled with
+  `:fallback-405? false`), the request is reported as `:no-method-match` against the last fully matched URI template,
+  if any, or as `:no-uri-match` otherwise.
+
+  Options:
+
+  | Kwarg       | Description                                      |
+  |-------------|--------------------------------------------------|
+  |`:uri-key`   |The URI key in given routes, default `:uri`       |
+  |`:method-key`|HTTP method key in given routes, default `:method`|
+
+  See: [[analyze-log]]"
+  ([routes {:keys [uri-key method-key]
+            :or {uri-key    :uri
+                 method-key :method}
+            :as options}]
+    (let [routes (instrument-routes routes uri-key method-key "" nil)]
+      (fn route-analyzer [method uri]
+        (let [counter     (VolatileInt. 0)
+              uri-matched (volatile! nil)
+              outcome     (or (r/dispatch routes {:request-method  method
+                                                  :uri             uri
+                                                  matcher-count-key counter
+                                                  uri-matched-key   uri-matched})
+                            (if-some [full-uri @uri-matched]
+                              {:match :no-method-match
+                               :route full-uri}
+                              {:match :no-uri-match}))]
+          (assoc outcome :matchers (.get counter))))))
+  ([routes]
+    (make-route-analyzer routes {})))
+
+
+;; ----- access log parsing -----
+
+
+(defn- skip-chars
+  "Return the index of the first char at or after index that is not a space/tab (space? true) or that is a space/tab
+  (space? false)."
+  ^long [^String line ^long index space?]
+  (let [length (.length line)]
+    (loop [index index]
+      (if (and (< index length)
+            (let [ch (.charAt line (int index))]
+              (= space? (or (= ch \space) (= ch \tab)))))
+        (recur (unchecked-inc index))
+        index))))
+
+
+(defn parse-log-line
+  "Given an access log line return a vector `[method-keyword uri]`, or `nil` if the line cannot be parsed. Lines in
+  Common/Combined Log Format (request line enclosed in double quotes) and plain `METHOD URI` lines are supported. The
+  query string, if any, is dropped from the URI."
+  [^String line]
+  (let [begin   (let [quote-index (long (.indexOf line (int \")))]
+                  (if (neg? quote-index) 0 (unchecked-inc quote-index)))
+        length  (long (.length line))
+        m-begin (skip-chars line begin true)
+        m-end   (skip-chars line m-begin false)
+        u-begin (skip-chars line m-end true)
+        u-end   (loop [index u-begin]
+                  (if (< index length)
+                    (let [ch (.charAt line (int index))]
+                      (if (or (= ch \space) (= ch \tab) (= ch \?) (= ch \"))
+                        index
+                        (recur (unchecked-inc index))))
+                    index))]
+    (when (and (< m-begin m-end)
+            (< u-begin u-end)
+            (= \/ (.charAt line (int u-begin))))
+      [(keyword (string/lower-case (subs line m-begin m-end)))
+       (subs line u-begin u-end)])))
+
+
+;; ----- memory-mapped log reading -----
+
+
+(defn- next-line-start
+  "Return the position just after the first newline at or after the given position, or file size if none found."
+  ^long [^FileChannel channel ^long position ^long file-size]
+  (let [^ByteBuffer buffer (ByteBuffer/allocate 8192)]
+    (loop [position position]
+      (if (>= position file-size)
+        file-size
+        (do
+          (.clear ^Buffer buffer)
+          (let [n (.read channel buffer position)
+                k (long (loop [k 0]
+                    (cond
+                      (>= k n)                                   -1
+                      (== 10 (.get buffer (int k)))             k
+                      :otherwise                                 (recur (unchecked-inc k)))))]
+            (cond
+              (<= n 0)   file-size
+              (neg? k) (recur (+ position n))
+              :otherwise (+ position k 1))))))))
+
+
+(defn- split-segments
+  "Split the file into (at most) n segments aligned at line boundaries, returning a vector of [start end] pairs."
+  [^FileChannel channel ^long file-size ^long n]
+  (let [nominal (quot file-size n)
+        bounds  (-> (reduce (fn [bounds ^long idx]
+                              (let [previous (long (peek bounds))]
+                                (conj bounds (max previous (next-line-start channel (* idx nominal) file-size)))))
+                      [0] (range 1 n))
+                  (conj file-size))]
+    (->> (partition 2 1 bounds)
+      (remove (fn [[start end]] (== (long start) (long end))))
+      (mapv vec))))
+
+
+(defn- scan-lines
+  "Invoke line-fn with every line in the buffer up to specified limit. Trailing carriage-return is dropped."
+  [^MappedByteBuffer buffer ^long limit line-fn]
+  (loop [index      0
+         line-start 0
+         line-bytes (byte-array 256)]
+    (let [at-end? (>= index limit)]
+      (if (or at-end? (== 10 (.get buffer (int index))))
+        (let [^bytes line-bytes (let [^bytes lb line-bytes
+                                      length (- index line-start)]
+                                  (if (> length (alength lb))
+                                    (byte-array (* 2 length))
+                                    lb))
+              length (let [length (- index line-start)]
+                       (if (and (pos? length) (== 13 (.get buffer (int (dec index)))))
+                         (dec length)
+                         length))]
+          (when (pos? length)
+            (.position ^Buffer buffer (int line-start))
+            (.get buffer line-bytes 0 (int length))
+            (line-fn (String. line-bytes 0 (int length) StandardCharsets/UTF_8)))
+          (when-not at-end?
+            (recur (unchecked-inc index) (unchecked-inc index) line-bytes)))
+        (recur (unchecked-inc index) line-start line-bytes)))))
+
+
+(defn- scan-segment
+  "Memory-map the segment [start end) in windows of (at most) window-size bytes aligned at line boundaries, invoking
+  line-fn with every line."
+  [^FileChannel channel ^long start ^long end ^long window-size line-fn]
+  (loop [position start]
+    (when (and (< position end)
+            (not (.isInterrupted (Thread/currentThread))))  ; stop when cancelled
+      (let [size    (min window-size (- end position))
+            buffer  (.map channel FileChannel$MapMode/READ_ONLY position size)
+            last?   (== end (+ position size))
+            limit   (long (if last?
+                      size
+                      (loop [k (dec size)]  ; find last newline in the window
+                        (cond
+                          (neg? k)                         0
+                          (== 10 (.get buffer (int k)))    (unchecked-inc k)
+                          :otherwise                       (recur (dec k))))))]
+        (when (zero? limit)
+          (i/expected (str "a newline within " window-size " bytes (window-size) at file position " position)
+            {:position position :window-size window-size}))
+        (scan-lines buffer limit line-fn)
+        (recur (+ position limit))))))
+
+
+;; ----- analysis -----
+
+
+(defn- inc-count!
+  [^HashMap m k ^long delta]
+  (let [^longs counter (or (.get m k)
+                         (let [counter (long-array 1)]
+                           (.put m k counter)
+                           counter))]
+    (aset counter 0 (+ (aget counter 0) delta))))
+
+
+(defn- ->count-map
+  [^HashMap m]
+  (persistent!
+    (reduce (fn [result ^Map$Entry entry]
+              (assoc! result (.getKey entry) (aget ^longs (.getValue entry) 0)))
+      (transient {}) (.entrySet m))))
+
+
+(defn- analyze-segment
+  "Analyze a segment of the log file, returning a map of counts."
+  [channel [start end] route-analyzer {:keys [parse-line window-size unmatched-limit]}]
+  (let [unmatched-limit (long unmatched-limit)
+        totals    (long-array 4)  ; requests, skipped-lines, matcher-evals, unmatched-dropped
+        hits      (HashMap.)
+        evals     (HashMap.)
+        no-uri    (HashMap.)
+        no-method (HashMap.)]
+    (scan-segment channel start end window-size
+      (fn [line]
+        (if-some [[method uri] (parse-line line)]
+          (let [{:keys [match route matchers]} (route-analyzer method uri)
+                matchers (long matchers)]
+            (aset totals 0 (unchecked-inc (aget totals 0)))
+            (aset totals 2 (+ (aget totals 2) matchers))
+            (case match
+              :route           (do
+                                 (inc-count! hits route 1)
+                                 (inc-count! evals route matchers))
+              :no-method-match (inc-count! no-method (str (method-label method) " " route) 1)
+              :no-uri-match    (if (or (.containsKey no-uri uri)
+                                     (< (.size no-uri) unmatched-limit))
+                                 (inc-count! no-uri uri 1)
+                                 (aset totals 3 (unchecked-inc (aget totals 3))))))
+          (aset totals 1 (unchecked-inc (aget totals 1))))))
+    {:requests          (aget totals 0)
+     :skipped           (aget totals 1)
+     :matcher-evals     (aget totals 2)
+     :unmatched-dropped (aget totals 3)
+     :route-hits        (->count-map hits)
+     :route-evals       (->count-map evals)
+     :no-uri-match      (->count-map no-uri)
+     :no-method-match   (->count-map no-method)}))
+
+
+(defn- average
+  ^double [^long total ^long n]
+  (if (pos? n)
+    (/ (double total) (double n))
+    0.0))
+
+
+(defn- sort-by-count
+  [count-map]
+  (->> count-map
+    (sort-by (fn [[k n]] [(- (long n)) (str k)]))
+    vec))
+
+
+(defn analyze-log
+  "Given compiled routes (see [[calfpath.route/compile-routes]]) and an access log file, resolve every request in the
+  log against the routes (without invoking handlers) and return a report. The log file is read via memory-mapped NIO,
+  split into line-aligned segments that are analyzed in parallel. Report attributes:
+
+  | Key                 | Description                                                                       |
+  |---------------------|-----------------------------------------------------------------------------------|
+  |`:requests`          |number of requests analyzed                                                        |
+  |`:skipped`           |number of log lines that could not be parsed                                       |
+  |`:avg-matchers`      |average number of matchers evaluated per request                                   |
+  |`:routes`            |vector of `{:route label :hits n :avg-matchers m}` maps, sorted by hits descending  |
+  |`:no-uri-match`      |vector of `[uri count]` for requests not matching any URI, sorted by count          |
+  |`:no-method-match`   |vector of `[\"METHOD route\" count]` for requests not matching the method            |
+  |`:unmatched-dropped` |number of unmatched requests not in `:no-uri-match` due to `:unmatched-limit`      |
+
+  Options:
+
+  | Kwarg            | Description                                                                        |
+  |------------------|------------------------------------------------------------------------------------|
+  |`:uri-key`        |The URI key in given routes, default `:uri`                                          |
+  |`:method-key`     |HTTP method key in given routes, default `:method`                                  |
+  |`:parse-line`     |`(fn [line]) -> [method-keyword uri]` or `nil`, default [[parse-log-line]]           |
+  |`:parallelism`    |number of segments to analyze in parallel, default available processors             |
+  |`:window-size`    |max bytes to memory-map at a time per segment, default 64 MiB                       |
+  |`:unmatched-limit`|max distinct unmatched URIs tracked per segment, default 10000                       |
+
+  See: [[make-route-analyzer]]"
+  ([routes log-file {:keys [parse-line parallelism window-size unmatched-limit]
+                     :or {parse-line      parse-log-line
+                          parallelism     (.availableProcessors (Runtime/getRuntime))
+                          window-size     (* 64 1024 1024)
+                          unmatched-limit 10000}
+                     :as options}]
+    (i/expected pos? "positive :parallelism" parallelism)
+    (i/expected #(<= 1 (long %) Integer/MAX_VALUE) ":window-size between 1 and Integer/MAX_VALUE" window-size)
+    (let [route-analyzer (make-route-analyzer routes options)
+          segment-opts   {:parse-line      parse-line
+                          :window-size     window-size
+                          :unmatched-limit unmatched-limit}]
+      (with-open [file (RandomAccessFile. (io/file log-file) "r")]
+        (let [^FileChannel channel (.getChannel file)
+              segments (split-segments channel (.size channel) parallelism)
+              futures  (mapv #(future (analyze-segment channel % route-analyzer segment-opts)) segments)
+              results  (try
+                         (mapv deref futures)
+                         (catch Throwable e
+                           ;; cancel other segments before the channel is closed
+                           (run! future-cancel futures)
+                           (throw (if (instance? ExecutionException e)
+                                    (.getCause e)
+                                    e))))
+              merged   (reduce (fn [result each]
+                                 (merge-with (fn [x y] (if (map? x) (merge-with + x y) (+ (long x) (long y))))
+                                   result each))
+                         {:requests 0 :skipped 0 :matcher-evals 0 :unmatched-dropped 0
+                          :route-hits {} :route-evals {} :no-uri-match {} :no-method-match {}}
+                         results)
+              evals    (:route-evals merged)]
+          {:requests          (:requests merged)
+           :skipped           (:skipped merged)
+           :avg-matchers      (average (:matcher-evals merged) (:requests merged))
+           :routes            (mapv (fn [[route hits]]
+                                      {:route        route
+                                       :hits         hits
+                                       :avg-matchers (average (get evals route) hits)})
+                                (sort-by-count (:route-hits merged)))
+           :no-uri-match      (sort-by-count (:no-uri-match merged))
+           :no-method-match   (sort-by-count (:no-method-match merged))
+           :unmatched-dropped (:unmatched-dropped merged)}))))
+  ([routes log-file]
+    (analyze-log routes log-file {})))
@@ -0,0 +1,126 @@
+;   Copyright (c) Shantanu Kumar. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file LICENSE at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+
+(ns calfpath.route-analyze-test
+  (:require
+    [clojure.java.io :as io]
+    [clojure.string :as string]
+    [clojure.test :refer [deftest is testing]]
+    [calfpath.route :as r]
+    [calfpath.route.analyze :as a])
+  (:import
+    [java.io File]))
+
+
+(def handler-invoked? (atom false))
+
+
+(defn handler
+  [request]
+  (reset! handler-invoked? true)
+  {:status 200 :body "OK"})
+
+
+(def compiled-routes
+  (r/compile-routes
+    [{["/info/:token"             :get] handler}
+     {["/album/:lid/artist/:rid/" :get] handler}
+     {"/user/:id*" [{"/permissions/" [{:get handler}
+                                      {:put handler}]}
+                    {"/profile/:type/" [{:get    handler}
+                                        {:delete handler}]}]}
+     {["/health" :get] handler}]))
+
+
+(deftest test-parse-log-line
+  (testing "plain lines"
+    (is (= [:get "/info/abc"] (a/parse-log-line "GET /info/abc")))
+    (is (= [:put "/user/10/permissions/"] (a/parse-log-line "PUT  /user/10/permissions/?x=y HTTP/1.1"))))
+  (testing "common log format"
+    (is (= [:post "/album/1/artist/2/"]
+          (a/parse-log-line
+            "127.0.0.1 - frank [10/Oct/2000:13:55:36 -0700] \"POST /album/1/artist/2/?q=1 HTTP/1.0\" 200 2326"))))
+  (testing "unparseable lines"
+    (is (nil? (a/parse-log-line "")))
+    (is (nil? (a/parse-log-line "GET")))
+    (is (nil? (a/parse-log-line "127.0.0.1 - - [10/Oct/2000:13:55:36 -0700] \"-\" 400 0")))))
+
+
+(deftest test-route-analyzer
+  (let [analyze (a/make-route-analyzer compiled-routes)]
+    (testing "route match"
+      (let [outcome (analyze :get "/user/10/profile/compact/")]
+        (is (= :route (:match outcome)))
+        (is (= "GET /user/:id/profile/:type/" (:route outcome)))
+        (is (pos? (:matchers outcome)))))
+    (testing "no method match"
+      (let [outcome (analyze :post "/user/10/permissions/")]
+        (is (= :no-method-match (:match outcome)))
+        (is (= "/user/:id/permissions/" (:route outcome)))))
+    (testing "no URI match"
+      (is (= :no-uri-match (:match (analyze :get "/hello/joe/")))))
+    (is (false? @handler-invoked?) "route handlers are not invoked")))
+
+
+(deftest test-handler-and-nested
+  (let [routes  (r/compile-routes [{:uri "/info*" :handler handler :nested [{["/:token" :get] handler}]}])
+        analyze (a/make-route-analyzer routes)]
+    (is (= "* /info" (:route (analyze :get "/info/abc"))) "handler takes precedence over nested routes")
+    (is (false? @handler-invoked?) "route handlers are not invoked")))
+
+
+(deftest test-user-fallback
+  (let [routes  (-> [{["/info/:token" :get] handler}]
+                  (r/compile-routes {:fallback-400? false})
+                  (r/conj-fallback-match handler))
+        analyze (a/make-route-analyzer routes)]
+    (is (= :route (:match (analyze :get "/hello/joe/"))) "user catch-all route is a route hit")
+    (is (= :no-method-match (:match (analyze :post "/info/abc"))))
+    (is (false? @handler-invoked?) "route handlers are not invoked")))
+
+
+(deftest test-no-fallback-405
+  (let [analyze (-> [{["/info/:token" :get] handler}]
+                  (r/compile-routes {:fallback-405? false})
+                  a/make-route-analyzer)]
+    (is (= {:match :no-method-match :route "/info/:token"}
+          (dissoc (analyze :post "/info/abc") :matchers)) "method mismatch without a 405 fallback route")
+    (is (= :no-uri-match (:match (analyze :get "/hello/joe/"))))
+    (is (false? @handler-invoked?) "route handlers are not invoked")))
+
+
+(deftest test-analyze-log
+  (let [^File log-file (File/createTempFile "calfpath-access-" ".log")
+        lines (->> (cycle ["GET /info/abc"
+                           "GET /user/10/profile/compact/?full=true"
+                           "GET /user/20/profile/compact/"
+                           "POST /user/10/permissions/"
+                           "GET /hello/joe/"
+                           "this is not a request line"])
+                (take 600))]
+    (try
+      (spit log-file (string/join "\r\n" lines))
+      (doseq [[parallelism window-size] [[1 (* 64 1024 1024)] [4 200] [7 64]]]
+        (testing (str "parallelism " parallelism ", window-size " window-size)
+          (let [report (a/analyze-log compiled-routes (.getPath log-file) {:parallelism parallelism
+                                                                           :window-size window-size})]
+            (is (= 500 (:requests report)))
+            (is (= 100 (:skipped report)))
+            (is (pos? (:avg-matchers report)))
+            (is (= [["GET /user/:id/profile/:type/" 200] ["GET /info/:token" 100]]
+                  (mapv (juxt :route :hits) (:routes report))))
+            (is (= [["/hello/joe/" 100]] (:no-uri-match report)))
+            (is (= [["POST /user/:id/permissions/" 100]] (:no-method-match report)))
+            (is (zero? (:unmatched-dropped report))))))
+      (testing "too long line for window"
+        (is (thrown? clojure.lang.ExceptionInfo
+              (a/analyze-log compiled-routes log-file {:parallelism 1 :window-size 8}))))
+      (finally
+        (io/delete-file log-file true)))
+    (is (false? @handler-invoked?) "route handlers are not invoked")))